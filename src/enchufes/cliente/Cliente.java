@@ -23,9 +23,12 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import enchufes.servidor.Compresion;
 import static enchufes.servidor.ProtocoloChat.CLAVE_USARIO_REGISTRADO;
+import static enchufes.servidor.ProtocoloChat.COMANDO_COMPRIMIR;
 
 /**
  * Programa cliente para conectarse con el servidor de chat.
@@ -37,15 +40,35 @@ public class Cliente {
 	private String delServidor;
 	private String delUsuario;
 	private boolean conexiónViva = true;
+	private Pantalla pantalla;
+	
+	/** Si el servidor anunció el comando de compresión en su ayuda. */
+	private boolean servidorComprime = false;
 	
 	public static final String INI_COLOR_USUARIO = "\033[1;34m";
 	
+	/** Argumento para no pedir la compresión de mensajes largos. */
+	public static final String SIN_COMPRESION = "--sin-compresion";
+	
 	/**
 	 * Conecta al cliente al servidor en la dirección y pueto indicados.
 	 * @param anfitrión Dirección ip del servidor.
 	 * @param puerto Puerto donde escucha el servidor.
 	 */
 	public Cliente(String anfitrión, int puerto) {
+		this(anfitrión, puerto, Pantalla.TASA_POR_DEFECTO, true);
+	}
+	
+	/**
+	 * Conecta al cliente al servidor en la dirección y pueto indicados.
+	 * @param anfitrión Dirección ip del servidor.
+	 * @param puerto Puerto donde escucha el servidor.
+	 * @param mensajesPorSegundo Máximo de mensajes mostrados por segundo,
+	 *                           los demás se resumen.
+	 * @param comprimir Si se pide la compresión de mensajes largos cuando el
+	 *                  servidor la ofrece.
+	 */
+	public Cliente(String anfitrión, int puerto, int mensajesPorSegundo, boolean comprimir) {
 		// try-with-resources cierra las conexiones cuando termina la ejecución
 		// del bloque.
 		try (
@@ -57,6 +80,7 @@ public class Cliente {
 			
 			System.out.println("\033[1;35m*..............................................................................*");
 			System.out.println("*...                                  Chat                                  ...*");
+			pantalla = new Pantalla(System.out, mensajesPorSegundo);
  
 			// Escucha e imprime los mensajes del servidor.
 			Thread escuchaServidor = new Thread() {
@@ -65,36 +89,30 @@ public class Cliente {
 					try {
 						// Recibe nombre de usuario verificado
 						while(!(delServidor = in.readLine()).startsWith(CLAVE_USARIO_REGISTRADO) ) {
-							System.out.println(delServidor);
+							if (delServidor.contains(COMANDO_COMPRIMIR + "\t")) servidorComprime = true;
+							pantalla.agrega(delServidor);
 						}
 						// Se recibió mensaje con nombre de usuario confirmado
 						usuario = delServidor.substring(CLAVE_USARIO_REGISTRADO.length()).trim();
-						System.out.format("Tu nombre de usuario \033[96m %s \033[0m ha sido confirmado.%n", usuario);
+						pantalla.usuario(usuario);
+						pantalla.agrega(String.format("Tu nombre de usuario \033[96m %s \033[0m ha sido confirmado.", usuario));
+						// Pide que los mensajes largos lleguen comprimidos, sólo si el
+						// servidor lo ofrece.
+						if (comprimir && servidorComprime) {
+							out.println(COMANDO_COMPRIMIR);
+						}
 						
-						String[] partes;
 						while ((delServidor = in.readLine()) != null) { // Si el servidor muere ¡lo espera por siempre y este hilo no muere!
-							if (delServidor.equals(enchufes.servidor.ProtocoloChat.PALABRA_SALIDA)) {
-								System.out.println("\033[1;35mConexión terminada, presiona cualquier tecla.");
-								System.out.println("*..............................................................................*\033[0m");
-								conexiónViva = false;
-								break;
-							}
-							
-							if((partes = extraeUsuario(delServidor)) != null) {
-								if(partes[0].equals(usuario)) {
-									System.out.println("\033[96m Yo: \033[0m " + partes[1]);
-								} else {
-									System.out.format("%s%s\033[0m: %s%n", INI_COLOR_USUARIO, partes[0], partes[1]);
-								}
-							} else {
-								System.out.println(delServidor);
-							}
+							if (!muestra(delServidor)) break;
 						}
 					} catch (IOException ex) {
 						// No llega en el cliente ¿por qué?
 						Logger.getLogger(Cliente.class.getName()).log(Level.SEVERE, null, ex);
 						conexiónViva = false;
 						return;
+					} finally {
+						// Muestra lo que quede pendiente.
+						pantalla.cierra();
 					}
 				}
 			};
@@ -119,35 +137,68 @@ public class Cliente {
 	}
 	
 	/**
-	 * Auxiliar para extraer el nombre de usuario del mensaje enviado por el
-	 * servidor.
-	 * @param msj Cadena enviada por el servidor.
-	 * @return Arreglo con el nombre en la primera posición y mensaje en la
-	 *         segunda.
+	 * Pasa a la pantalla lo recibido del servidor, descomprimiéndolo si es
+	 * necesario.  Nunca espera a la terminal.
+	 * @param recibido Línea tal como llegó del servidor.
+	 * @return false si el servidor terminó la conexión.
 	 */
-	private static String[] extraeUsuario(String msj) {
-		int fin;
-		String[] partes = null;
-		if(msj.startsWith("[[") && (fin = msj.indexOf("]]:")) > 0) {
-			partes = new String[2];
-			partes[0] = msj.substring(2,fin);   // Usuario
-			partes[1] = msj.substring(fin+4);   // Mensaje
+	private boolean muestra(String recibido) {
+		if (!recibido.startsWith(Compresion.PREFIJO)) {
+			return agrega(recibido);
 		}
-		return partes;
+		
+		String texto;
+		try {
+			texto = Compresion.descomprime(recibido);
+		} catch (IllegalArgumentException ex) {
+			Logger.getLogger(Cliente.class.getName()).log(Level.WARNING, "Mensaje comprimido inválido.", ex);
+			return true;
+		}
+		// Un mensaje comprimido puede traer varias líneas.
+		for (String línea : texto.split("\\R")) {
+			if (!agrega(línea)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Pasa una línea a la pantalla.
+	 * @param línea Línea ya descomprimida.
+	 * @return false si el servidor terminó la conexión.
+	 */
+	private boolean agrega(String línea) {
+		if (línea.equals(enchufes.servidor.ProtocoloChat.PALABRA_SALIDA)) {
+			pantalla.agrega("\033[1;35mConexión terminada, presiona cualquier tecla.");
+			pantalla.agrega("*..............................................................................*\033[0m");
+			conexiónViva = false;
+			return false;
+		}
+		pantalla.agrega(línea);
+		return true;
 	}
 	
 	/**
 	 * Entrada del programa
-	 * @param args Dirección del servidor y puerto.
+	 * @param args Dirección del servidor, puerto y, opcionalmente, mensajes
+	 *             mostrados por segundo y --sin-compresion.
 	 */
 	public static void main(String[] args) {
-		if (args.length != 2) {
-			System.err.println("Uso: java enchufes.Cliente <host name> <port number>");
+		boolean comprimir = !Arrays.asList(args).contains(SIN_COMPRESION);
+		if (!comprimir) {
+			args = Arrays.stream(args).filter(a -> !a.equals(SIN_COMPRESION)).toArray(String[]::new);
+		}
+		if (args.length != 2 && args.length != 3) {
+			System.err.println("Uso: java enchufes.Cliente <host name> <port number> [<mensajes por segundo>] [--sin-compresion]");
 			System.exit(1);
 		}
 
 		String anfitrión = args[0];
 		int puerto = Integer.parseInt(args[1]);
-		new Cliente(anfitrión, puerto);
+		int tasa = args.length == 3 ? Integer.parseInt(args[2]) : Pantalla.TASA_POR_DEFECTO;
+		if (tasa <= 0) {
+			System.err.println("Los mensajes por segundo deben ser un número positivo.");
+			System.exit(1);
+		}
+		new Cliente(anfitrión, puerto, tasa, comprimir);
 	}
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2021, blackzafiro. All rights reserved.
+ *
+ * This software was designed with purely academic purposes.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package enchufes.cliente;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static enchufes.cliente.Cliente.INI_COLOR_USUARIO;
+import static enchufes.servidor.Servidor.NOMBRE_SERVIDOR;
+
+/**
+ * Muestra en la terminal lo que llega del servidor sin detener al hilo que
+ * lee del enchufe.
+ * 
+ * El hilo lector sólo agrega líneas a una lista; un hilo aparte las toma
+ * cada {@link #INTERVALO_MS} milisegundos, las formatea en un búfer que se
+ * reutiliza y las escribe en la terminal de una sola vez.  Si en un cuadro
+ * llegan más mensajes de los que permite la tasa de despliegue, se muestran
+ * los más recientes y se resume cuántos se omitieron.  La tasa se controla
+ * con una cubeta de fichas que conserva fracciones entre cuadros, así que
+ * también se respetan tasas menores a un mensaje por cuadro.  Si la terminal
+ * se detiene, los mensajes que excedan unos cuantos cuadros de espera se
+ * descartan al llegar para no acumularlos en memoria.  Los avisos del
+ * servidor, la ayuda y los mensajes propios nunca se omiten.
+ * @author blackzafiro
+ */
+public class Pantalla {
+	
+	/** Tiempo entre escrituras a la terminal. */
+	public static final int INTERVALO_MS = 50;
+	
+	/** Cuadros de mensajes que pueden esperar a la terminal. */
+	private static final int CUADROS_EN_ESPERA = 4;
+	
+	/** Mensajes por segundo que se muestran si no se indica otra tasa. */
+	public static final int TASA_POR_DEFECTO = 200;
+	
+	private final PrintStream salida;
+	
+	/** Mensajes de usuarios que se muestran por segundo. */
+	private final double tasa;
+	
+	/** Máximo de fichas acumuladas, lo que cabe en un cuadro y al menos una. */
+	private final double capacidad;
+	
+	/** Fichas disponibles, cada mensaje mostrado gasta una. */
+	private double fichas;
+	
+	/** Momento en que se recargaron las fichas por última vez. */
+	private long últimaRecarga = System.nanoTime();
+	
+	/** Líneas agregadas por el hilo lector, aún no mostradas. */
+	private List<String> pendientes = new ArrayList<>();
+	
+	/** Mensajes de usuarios en pendientes y máximo que se guardan. */
+	private int mensajesPendientes = 0;
+	private final int máximoPendientes;
+	
+	/** Mensajes descartados al llegar, aún no sumados a omitidos. */
+	private long descartados = 0;
+	
+	/** Líneas del cuadro que se está dibujando, se intercambia con pendientes. */
+	private List<String> cuadro = new ArrayList<>();
+	
+	/** Búfer donde se arma el texto de cada cuadro. */
+	private final StringBuilder texto = new StringBuilder(8192);
+	
+	private volatile String usuario;
+	private boolean activa = true;
+	private long omitidos = 0;
+	
+	/** Mensajes omitidos que aún no aparecen en un resumen. */
+	private long sinResumir = 0;
+	private long últimoResumen = System.nanoTime();
+	private final Thread dibujante;
+	
+	/**
+	 * Crea la pantalla e inicia el hilo que escribe en la terminal.
+	 * @param salida           Flujo de la terminal.
+	 * @param mensajesPorSegundo Tasa máxima de mensajes mostrados.
+	 * @throws IllegalArgumentException Si la tasa no es positiva.
+	 */
+	public Pantalla(PrintStream salida, int mensajesPorSegundo) {
+		if (mensajesPorSegundo <= 0) {
+			throw new IllegalArgumentException("La tasa de mensajes debe ser positiva.");
+		}
+		this.salida = salida;
+		tasa = mensajesPorSegundo;
+		capacidad = Math.max(1.0, tasa * INTERVALO_MS / 1000.0);
+		fichas = capacidad;
+		máximoPendientes = (int) Math.ceil(capacidad * CUADROS_EN_ESPERA);
+		dibujante = new Thread(this::dibuja, "pantalla");
+		dibujante.setDaemon(true);
+		dibujante.start();
+	}
+	
+	/**
+	 * @param usuario Nombre confirmado, sus mensajes se muestran como "Yo".
+	 */
+	public void usuario(String usuario) {
+		this.usuario = usuario;
+	}
+	
+	/**
+	 * Agrega una línea para mostrarse en el siguiente cuadro, no bloquea
+	 * esperando a la terminal.
+	 * @param línea Línea recibida del servidor o aviso local.
+	 */
+	public synchronized void agrega(String línea) {
+		if (esDeUsuario(línea)) {
+			// Aplica presión desde aquí: si la terminal va atrasada no se
+			// guardan más mensajes, sólo se cuentan.
+			if (mensajesPendientes >= máximoPendientes) {
+				descartados++;
+				return;
+			}
+			mensajesPendientes++;
+		}
+		pendientes.add(línea);
+		if (pendientes.size() == 1) notify();
+	}
+	
+	/**
+	 * Muestra lo pendiente y detiene el hilo de la pantalla.
+	 */
+	public void cierra() {
+		synchronized (this) {
+			activa = false;
+			notify();
+		}
+		try {
+			dibujante.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/** Ciclo del hilo dibujante. */
+	private void dibuja() {
+		boolean continuar = true;
+		while (continuar) {
+			synchronized (this) {
+				while (activa && pendientes.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+			}
+			// Deja que se acumulen las líneas que lleguen durante el cuadro.
+			try {
+				Thread.sleep(INTERVALO_MS);
+			} catch (InterruptedException ex) {
+				return;
+			}
+			synchronized (this) {
+				List<String> llenas = pendientes;
+				pendientes = cuadro;
+				cuadro = llenas;
+				mensajesPendientes = 0;
+				sinResumir += descartados;
+				omitidos += descartados;
+				descartados = 0;
+				continuar = activa;
+			}
+			escribe(!continuar);
+		}
+	}
+	
+	/**
+	 * Formatea y escribe las líneas del cuadro en una sola operación.
+	 * @param último Si es el cuadro final y debe resumir todo lo omitido.
+	 */
+	private void escribe(boolean último) {
+		int mensajes = 0;
+		for (String línea : cuadro) {
+			if (esDeUsuario(línea)) mensajes++;
+		}
+		
+		long ahora = System.nanoTime();
+		fichas = Math.min(capacidad, fichas + tasa * (ahora - últimaRecarga) / 1e9);
+		últimaRecarga = ahora;
+		int mostrados = Math.min(mensajes, (int) fichas);
+		fichas -= mostrados;
+		int porOmitir = mensajes - mostrados;
+		omitidos += porOmitir;
+		
+		texto.setLength(0);
+		for (String línea : cuadro) {
+			if (!esDeUsuario(línea)) {
+				if (esMensaje(línea)) {
+					formatea(línea);
+				} else {
+					texto.append(línea).append(System.lineSeparator());
+				}
+			} else if (porOmitir > 0) {
+				porOmitir--;
+				sinResumir++;
+			} else {
+				resume(ahora);
+				formatea(línea);
+			}
+		}
+		// Con tasas bajas no se resume en cada cuadro, a lo más una vez por segundo.
+		if (último || ahora - últimoResumen >= 1_000_000_000L) {
+			resume(ahora);
+		}
+		cuadro.clear();
+		
+		salida.print(texto);
+		salida.flush();
+	}
+	
+	/** Agrega al búfer cuántos mensajes se omitieron desde el último resumen. */
+	private void resume(long ahora) {
+		if (sinResumir == 0) return;
+		texto.append("\033[2m... ").append(sinResumir)
+		     .append(" mensajes omitidos (").append(omitidos)
+		     .append(" en total) ...\033[0m").append(System.lineSeparator());
+		sinResumir = 0;
+		últimoResumen = ahora;
+	}
+	
+	/** Línea con formato [[remitente]]: mensaje. */
+	private static boolean esMensaje(String línea) {
+		return línea.startsWith("[[") && línea.indexOf("]]:") > 0;
+	}
+	
+	/**
+	 * Mensaje enviado por otro usuario, sólo éstos cuentan para la tasa; los
+	 * avisos del servidor y los mensajes propios siempre se muestran.
+	 */
+	private boolean esDeUsuario(String línea) {
+		return esMensaje(línea) && !línea.startsWith(NOMBRE_SERVIDOR, 2) && !esPropio(línea);
+	}
+	
+	/** Mensaje que el servidor devuelve del propio usuario. */
+	private boolean esPropio(String línea) {
+		String yo = usuario;
+		return yo != null && línea.startsWith(yo, 2) && línea.startsWith("]]:", 2 + yo.length());
+	}
+	
+	/**
+	 * Agrega al búfer el mensaje con el nombre del usuario resaltado, sin
+	 * crear cadenas intermedias.
+	 */
+	private void formatea(String msj) {
+		int fin = msj.indexOf("]]:");
+		int inicioMsj = Math.min(fin + 4, msj.length());
+		if (esPropio(msj)) {
+			texto.append("\033[96m Yo: \033[0m ");
+		} else {
+			texto.append(INI_COLOR_USUARIO).append(msj, 2, fin).append("\033[0m: ");
+		}
+		texto.append(msj, inicioMsj, msj.length()).append(System.lineSeparator());
+	}
+}
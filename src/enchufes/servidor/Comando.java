@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021, blackzafiro. All rights reserved.
+ *
+ * This software was designed with purely academic purposes.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package enchufes.servidor;
+
+/**
+ * Comando que un cliente puede enviar al chat.
+ * Los comandos se registran en el {@link DespachadorComandos} del servidor.
+ * @author blackzafiro
+ */
+public interface Comando {
+	
+	/**
+	 * Texto de ayuda que se muestra a los clientes al conectarse.
+	 * @return Descripción del comando.
+	 */
+	String descripción();
+	
+	/**
+	 * Indica si el comando tarda lo suficiente como para no ejecutarse en el
+	 * hilo que lee los mensajes del cliente.
+	 * @return true si debe ejecutarse en un hilo trabajador.
+	 */
+	default boolean esCostoso() {
+		return false;
+	}
+	
+	/**
+	 * Indica si el comando recibe texto después de su nombre.  Si no, sólo
+	 * la línea idéntica al nombre lo invoca y cualquier otra se difunde
+	 * como mensaje.
+	 * @return true si acepta argumentos.
+	 */
+	default boolean aceptaArgumentos() {
+		return false;
+	}
+	
+	/**
+	 * Ejecuta el comando para el cliente que lo envió.
+	 * @param cliente    Protocolo que atiende al cliente, su respuesta se
+	 *                   escribe con {@link ProtocoloChat#envía(String)}.
+	 * @param argumentos Texto que sigue al nombre del comando (puede ser vacío).
+	 */
+	void ejecuta(ProtocoloChat cliente, String argumentos);
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2021, blackzafiro. All rights reserved.
+ *
+ * This software was designed with purely academic purposes.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package enchufes.servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión de mensajes largos entre el servidor y los clientes que la
+ * solicitan con {@link ProtocoloChat#COMANDO_COMPRIMIR}.
+ * 
+ * Un mensaje comprimido viaja en una sola línea: {@link #PREFIJO} seguido
+ * del texto comprimido con deflate y codificado en Base64.  El texto
+ * original puede tener varias líneas.  Todos los mensajes usan el mismo
+ * diccionario predefinido, así que no dependen de los anteriores y el
+ * servidor comprime cada difusión una sola vez para todos los destinatarios.
+ * @author blackzafiro
+ */
+public class Compresion {
+	
+	/** Marca el inicio de una línea comprimida. */
+	public static final String PREFIJO = "[z]";
+	
+	/**
+	 * Diccionario compartido por todas las conexiones con fragmentos que se
+	 * repiten en los mensajes del chat.  Lo más frecuente va al final.
+	 */
+	private static final byte[] DICCIONARIO = (
+			" que de la el en los las por para con una del como pero más " +
+			"está hola gracias sí no ya bien todo esto eso también " +
+			" Inicia lista de usuarios Termina lista de usuarios resultado(s) para " +
+			"\033[1;31mServidor:\033[0m \033[96m\033[0m \033[1;34m ha ingresado al chat. se ha desconectado. " +
+			"]]: [[\033[1;31mServidor:\033[0m]]: "
+	).getBytes(StandardCharsets.UTF_8);
+	
+	/** Descompresor por hilo, en el cliente sólo lo usa el hilo lector. */
+	private static final ThreadLocal<Inflater> DESCOMPRESORES =
+			ThreadLocal.withInitial(Inflater::new);
+	
+	private static final ThreadLocal<byte[]> BÚFERES =
+			ThreadLocal.withInitial(() -> new byte[8192]);
+	
+	/** Mensajes más cortos que esto se envían sin comprimir. */
+	private final int umbral;
+	
+	/** Máximo de compresores nativos, uno por procesador. */
+	private static final int MAX_COMPRESORES =
+			Math.max(1, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Compresores libres.  Se crean conforme hacen falta hasta
+	 * MAX_COMPRESORES y se liberan en {@link #close()}.
+	 */
+	private final ArrayBlockingQueue<Deflater> compresores =
+			new ArrayBlockingQueue<>(MAX_COMPRESORES);
+	private final AtomicInteger creados = new AtomicInteger();
+	private volatile boolean cerrada = false;
+	
+	private final LongAdder compresiones = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+	private final LongAdder envíos = new LongAdder();
+	private final LongAdder bytesOriginales = new LongAdder();
+	private final LongAdder bytesEnviados = new LongAdder();
+	
+	/**
+	 * @param umbral Caracteres a partir de los cuales se comprime,
+	 *               0 o menos desactiva la compresión.
+	 */
+	public Compresion(int umbral) {
+		this.umbral = umbral;
+	}
+	
+	/**
+	 * @return Si el servidor acepta que los clientes activen la compresión.
+	 */
+	public boolean activa() {
+		return umbral > 0;
+	}
+	
+	/**
+	 * Prepara una línea para difundirse; sólo se comprime la primera vez que
+	 * un destinatario lo pide.
+	 * @param texto Línea sin el salto de línea final.
+	 * @return Línea lista para enviar a varios clientes.
+	 */
+	public Linea linea(String texto) {
+		return new Linea(texto);
+	}
+	
+	/**
+	 * Comprime el texto si así ocupa menos.
+	 * @param original Texto en UTF-8, una o varias líneas sin el salto final.
+	 * @return Línea comprimida con {@link #PREFIJO} o null si conviene
+	 *         enviar el texto original.
+	 */
+	private String comprime(byte[] original) {
+		Deflater deflater = obtenCompresor();
+		if (deflater == null) return null;
+		
+		// Sólo se mide la compresión, no la espera por un compresor libre.
+		long inicio = System.nanoTime();
+		ByteArrayOutputStream comprimido = new ByteArrayOutputStream(original.length / 2);
+		byte[] búfer = new byte[Math.min(8192, original.length + 64)];
+		try {
+			deflater.reset();
+			deflater.setDictionary(DICCIONARIO);
+			deflater.setInput(original);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int n = deflater.deflate(búfer);
+				comprimido.write(búfer, 0, n);
+			}
+		} finally {
+			devuelveCompresor(deflater);
+		}
+		String línea = PREFIJO + Base64.getEncoder().encodeToString(comprimido.toByteArray());
+		compresiones.increment();
+		nanos.add(System.nanoTime() - inicio);
+		
+		return línea.length() < original.length ? línea : null;
+	}
+	
+	/**
+	 * Toma un compresor libre, crea uno si aún no se llega al máximo o
+	 * espera a que otro hilo devuelva el suyo.
+	 * @return Compresor, o null si la compresión ya se cerró.
+	 */
+	private Deflater obtenCompresor() {
+		if (cerrada) return null;
+		Deflater deflater = compresores.poll();
+		if (deflater != null) return deflater;
+		if (creados.incrementAndGet() <= MAX_COMPRESORES) {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+		creados.decrementAndGet();
+		try {
+			return compresores.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	private void devuelveCompresor(Deflater deflater) {
+		compresores.offer(deflater);
+		// Si se cerró mientras se usaba, se libera aquí.
+		if (cerrada) vacía();
+	}
+	
+	private void vacía() {
+		Deflater deflater;
+		while ((deflater = compresores.poll()) != null) {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Cuenta un mensaje que sí se envió comprimido.
+	 * @param original  Bytes del texto sin comprimir.
+	 * @param enviados  Caracteres de la línea comprimida.
+	 */
+	public void registraEnvío(int original, int enviados) {
+		envíos.increment();
+		bytesOriginales.add(original);
+		bytesEnviados.add(enviados);
+	}
+	
+	/** Libera la memoria nativa de los compresores. */
+	public void close() {
+		cerrada = true;
+		vacía();
+	}
+	
+	/**
+	 * Recupera el texto de una línea recibida.
+	 * @param línea Línea tal como llegó del servidor.
+	 * @return El texto original, o la misma línea si no venía comprimida.
+	 * @throws IllegalArgumentException Si la línea comprimida está dañada.
+	 */
+	public static String descomprime(String línea) {
+		if (!línea.startsWith(PREFIJO)) return línea;
+		
+		byte[] comprimido = Base64.getDecoder().decode(línea.substring(PREFIJO.length()));
+		Inflater inflater = DESCOMPRESORES.get();
+		inflater.reset();
+		inflater.setInput(comprimido);
+		
+		ByteArrayOutputStream texto = new ByteArrayOutputStream(comprimido.length * 3);
+		byte[] búfer = BÚFERES.get();
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(búfer);
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICCIONARIO);
+					} else if (inflater.needsInput()) {
+						throw new IllegalArgumentException("Mensaje comprimido incompleto.");
+					}
+				}
+				texto.write(búfer, 0, n);
+			}
+		} catch (DataFormatException ex) {
+			throw new IllegalArgumentException("Mensaje comprimido dañado.", ex);
+		}
+		return texto.toString(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Imprime la tasa de compresión de lo enviado y el tiempo de CPU usado.
+	 * @param salida Flujo donde se imprimen.
+	 */
+	public void imprimeMétricas(PrintStream salida) {
+		long originales = bytesOriginales.sum();
+		long enviados = bytesEnviados.sum();
+		salida.format("Compresión: %d envíos, %d -> %d bytes (%.1f%%), %d compresiones en %.3f ms de CPU%n",
+				envíos.sum(), originales, enviados,
+				originales == 0 ? 100.0 : 100.0 * enviados / originales,
+				compresiones.sum(), nanos.sum() / 1e6);
+	}
+	
+	/**
+	 * Línea que se envía a varios clientes.  La versión comprimida se
+	 * calcula una sola vez, cuando el primer cliente que la pidió la necesita.
+	 * La usa un solo hilo, el que difunde.
+	 */
+	public class Linea {
+		
+		/** Texto sin comprimir. */
+		public final String texto;
+		private String comprimida;
+		private int bytesOriginales;
+		private boolean calculada = false;
+		
+		private Linea(String texto) {
+			this.texto = texto;
+		}
+		
+		/**
+		 * @return La línea comprimida o null si conviene enviar el texto.
+		 */
+		public String comprimida() {
+			if (!calculada) {
+				calculada = true;
+				if (activa() && texto.length() >= umbral) {
+					byte[] original = texto.getBytes(StandardCharsets.UTF_8);
+					bytesOriginales = original.length;
+					comprimida = comprime(original);
+				}
+			}
+			return comprimida;
+		}
+		
+		/**
+		 * @return Bytes del texto en UTF-8, calculados junto con la
+		 *         versión comprimida.
+		 */
+		public int bytesOriginales() {
+			return bytesOriginales;
+		}
+	}
+}
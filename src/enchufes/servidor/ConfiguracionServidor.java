@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2021, blackzafiro. All rights reserved.
+ *
+ * This software was designed with purely academic purposes.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package enchufes.servidor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Properties;
+
+/**
+ * Opciones con las que el servidor escucha y configura los enchufes.
+ * Se leen de un archivo de propiedades y/o de los argumentos del programa,
+ * los argumentos tienen prioridad sobre el archivo.
+ * 
+ * Ejemplo de archivo:
+ * <pre>
+ * puerto=1557
+ * backlog=128
+ * aceptadores=4
+ * reuseport=true
+ * tcp_nodelay=true
+ * buffer_envio=65536
+ * buffer_recepcion=65536
+ * keepalive=true
+ * historial_mensajes=100000
+ * historial_minutos=1440
+ * compresion_umbral=256
+ * </pre>
+ * @author blackzafiro
+ */
+public class ConfiguracionServidor {
+	
+	public static final int PUERTO_POR_DEFECTO = 1557;
+	
+	/** Puerto donde escucha el servidor. */
+	int puerto = PUERTO_POR_DEFECTO;
+	
+	/** Máximo de conexiones pendientes de aceptar por enchufe servidor. */
+	int backlog = 50;
+	
+	/** Número de hilos que aceptan conexiones. */
+	int aceptadores = 1;
+	
+	/**
+	 * Si hay varios aceptadores, cada uno abre su propio enchufe servidor en
+	 * el mismo puerto con SO_REUSEPORT (Linux) y el sistema operativo reparte
+	 * las conexiones.  Si no está disponible todos comparten un enchufe.
+	 */
+	boolean reusePort = true;
+	
+	/** Desactiva el algoritmo de Nagle, las líneas del chat son cortas. */
+	boolean tcpNoDelay = true;
+	
+	/** Tamaño del búfer de envío de cada cliente, 0 usa el del sistema. */
+	int bufferEnvío = 0;
+	
+	/** Tamaño del búfer de recepción de cada cliente, 0 usa el del sistema. */
+	int bufferRecepción = 0;
+	
+	/** Activa SO_KEEPALIVE para detectar clientes que desaparecieron. */
+	boolean keepAlive = false;
+	
+	/** Mensajes que se guardan para /buscar. */
+	int historialMensajes = 100_000;
+	
+	/** Minutos tras los cuales un mensaje ya no aparece en /buscar. */
+	int historialMinutos = 24 * 60;
+	
+	/**
+	 * Caracteres a partir de los cuales se comprimen los mensajes para los
+	 * clientes que lo piden, 0 desactiva la compresión.
+	 */
+	int compresiónUmbral = 256;
+	
+	/** Uso del programa para mostrar cuando los argumentos no son válidos. */
+	public static final String USO =
+			"Uso: java enchufes.servidor.Servidor [<puerto>] [--config=<archivo>]\n" +
+			"       [--puerto=<n>] [--backlog=<n>] [--aceptadores=<n>] [--reuseport=<true|false>]\n" +
+			"       [--tcp_nodelay=<true|false>] [--buffer_envio=<bytes>]\n" +
+			"       [--buffer_recepcion=<bytes>] [--keepalive=<true|false>]\n" +
+			"       [--historial_mensajes=<n>] [--historial_minutos=<n>]\n" +
+			"       [--compresion_umbral=<caracteres>]";
+	
+	/**
+	 * Construye la configuración a partir de los argumentos del programa.
+	 * Un argumento sin "--" se interpreta como el puerto, igual que antes, y
+	 * puede combinarse con las demás opciones.
+	 * @param args Argumentos recibidos en main.
+	 * @return Configuración leída.
+	 * @throws IllegalArgumentException Si algún argumento no es válido.
+	 * @throws IOException Si no se pudo leer el archivo de configuración.
+	 */
+	public static ConfiguracionServidor deArgumentos(String[] args) throws IOException {
+		Properties propiedades = new Properties();
+		Properties banderas = new Properties();
+		String puertoPosicional = null;
+		
+		for (String arg : args) {
+			if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+				int igual = arg.indexOf('=');
+				String clave = arg.substring(2, igual);
+				String valor = arg.substring(igual + 1);
+				if (clave.equals("config")) {
+					try (InputStream archivo = new FileInputStream(valor)) {
+						propiedades.load(archivo);
+					}
+				} else {
+					banderas.setProperty(clave, valor);
+				}
+			} else if (puertoPosicional == null && !arg.startsWith("-")) {
+				puertoPosicional = arg;
+			} else {
+				throw new IllegalArgumentException("Argumento desconocido: " + arg);
+			}
+		}
+		if (puertoPosicional != null) {
+			if (banderas.containsKey("puerto")) {
+				throw new IllegalArgumentException("El puerto se indicó dos veces.");
+			}
+			banderas.setProperty("puerto", puertoPosicional);
+		}
+		propiedades.putAll(banderas);
+		
+		ConfiguracionServidor config = new ConfiguracionServidor();
+		for (String clave : propiedades.stringPropertyNames()) {
+			String valor = propiedades.getProperty(clave).trim();
+			switch (clave) {
+				case "puerto":             config.puerto = entero(clave, valor); break;
+				case "backlog":            config.backlog = entero(clave, valor); break;
+				case "aceptadores":        config.aceptadores = Math.max(1, entero(clave, valor)); break;
+				case "reuseport":          config.reusePort = Boolean.parseBoolean(valor); break;
+				case "tcp_nodelay":        config.tcpNoDelay = Boolean.parseBoolean(valor); break;
+				case "buffer_envio":       config.bufferEnvío = entero(clave, valor); break;
+				case "buffer_recepcion":   config.bufferRecepción = entero(clave, valor); break;
+				case "keepalive":          config.keepAlive = Boolean.parseBoolean(valor); break;
+				case "historial_mensajes": config.historialMensajes = Math.max(1, entero(clave, valor)); break;
+				case "historial_minutos":  config.historialMinutos = Math.max(1, entero(clave, valor)); break;
+				case "compresion_umbral":  config.compresiónUmbral = entero(clave, valor); break;
+				default:
+					throw new IllegalArgumentException("Opción desconocida: " + clave);
+			}
+		}
+		return config;
+	}
+	
+	private static int entero(String clave, String valor) {
+		try {
+			return Integer.parseInt(valor);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(clave + " debe ser un entero: " + valor);
+		}
+	}
+	
+	/**
+	 * Aplica las opciones a un enchufe recién aceptado.
+	 * @param enchufe Conexión con el cliente.
+	 * @throws SocketException Si el sistema rechaza alguna opción.
+	 */
+	void configura(Socket enchufe) throws SocketException {
+		enchufe.setTcpNoDelay(tcpNoDelay);
+		enchufe.setKeepAlive(keepAlive);
+		if (bufferEnvío > 0) enchufe.setSendBufferSize(bufferEnvío);
+		if (bufferRecepción > 0) enchufe.setReceiveBufferSize(bufferRecepción);
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2021, blackzafiro. All rights reserved.
+ *
+ * This software was designed with purely academic purposes.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package enchufes.servidor;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tabla de comandos del servidor.
+ * Los comandos baratos se ejecutan en el hilo del cliente que los envía,
+ * los costosos en un grupo acotado de hilos trabajadores para no detener
+ * la lectura de los mensajes de ese cliente.  Cada cliente puede tener sólo
+ * un comando costoso a la vez, para que ninguno llene la cola.
+ * También lleva la cuenta de cuántas veces se usa cada comando y cuánto tarda.
+ * @author blackzafiro
+ */
+public class DespachadorComandos {
+	
+	/** Máximo de comandos costosos esperando un hilo trabajador. */
+	private static final int CAPACIDAD_COLA = 64;
+	
+	/** Comandos registrados por nombre. */
+	private final Map<String, Comando> comandos = new ConcurrentHashMap<>();
+	
+	/** Orden de registro, para mostrar la ayuda siempre igual. */
+	private final List<String> orden = new CopyOnWriteArrayList<>();
+	
+	/** Latencias medidas por comando. */
+	private final Map<String, Metrica> métricas = new ConcurrentHashMap<>();
+	
+	/** Hilos que ejecutan los comandos costosos. */
+	private final ThreadPoolExecutor trabajadores;
+	
+	/**
+	 * Crea un despachador con tantos hilos trabajadores como procesadores.
+	 */
+	public DespachadorComandos() {
+		int hilos = Math.max(2, Runtime.getRuntime().availableProcessors());
+		AtomicInteger cuenta = new AtomicInteger();
+		trabajadores = new ThreadPoolExecutor(hilos, hilos, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(CAPACIDAD_COLA),
+				tarea -> {
+					Thread t = new Thread(tarea, "comando-" + cuenta.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		trabajadores.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Agrega un comando a la tabla.
+	 * @param nombre  Texto con el que el cliente invoca el comando (Ej: "/lista").
+	 * @param comando Implementación del comando.
+	 */
+	public void registra(String nombre, Comando comando) {
+		if (comandos.put(nombre, comando) == null) {
+			orden.add(nombre);
+		}
+		métricas.putIfAbsent(nombre, new Metrica());
+	}
+	
+	/**
+	 * @param nombre Texto a revisar.
+	 * @return Si el texto corresponde a un comando registrado.
+	 */
+	public boolean existe(String nombre) {
+		return comandos.containsKey(nombre);
+	}
+	
+	/**
+	 * Escribe la lista de comandos con su descripción.
+	 * @param cliente Protocolo del cliente al que se le muestra la ayuda.
+	 */
+	void enviaAyuda(ProtocoloChat cliente) {
+		StringBuilder ayuda = new StringBuilder();
+		for (String nombre : orden) {
+			ayuda.append(String.format("\033[1;35m%s\t%s\033[0m%n",
+					nombre, comandos.get(nombre).descripción()));
+		}
+		cliente.envía(ayuda.toString());
+	}
+	
+	/**
+	 * Ejecuta el comando contenido en la línea, si lo hay.
+	 * @param cliente Protocolo del cliente que envió la línea.
+	 * @param línea   Texto recibido del cliente.
+	 * @return false si la línea no es un comando y debe difundirse como mensaje.
+	 */
+	public boolean despacha(ProtocoloChat cliente, String línea) {
+		if (!línea.startsWith("/")) return false;
+		
+		int espacio = línea.indexOf(' ');
+		String nombre = espacio < 0 ? línea : línea.substring(0, espacio);
+		Comando comando = comandos.get(nombre);
+		if (comando == null) return false;
+		if (espacio >= 0 && !comando.aceptaArgumentos()) return false;
+		String argumentos = espacio < 0 ? "" : línea.substring(espacio + 1).trim();
+		
+		long inicio = System.nanoTime();
+		if (!comando.esCostoso()) {
+			ejecuta(nombre, comando, cliente, argumentos, inicio);
+			return true;
+		}
+		// Cada cliente tiene a lo más un comando costoso en curso.
+		if (!cliente.comandoCostosoEnCurso.compareAndSet(false, true)) {
+			métricas.get(nombre).rechazos.increment();
+			cliente.envía(String.format("%s Espera a que termine tu comando anterior para usar %s.%n",
+					Servidor.NOMBRE_SERVIDOR, nombre));
+			return true;
+		}
+		try {
+			trabajadores.execute(() -> {
+				try {
+					ejecuta(nombre, comando, cliente, argumentos, inicio);
+				} finally {
+					cliente.comandoCostosoEnCurso.set(false);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			cliente.comandoCostosoEnCurso.set(false);
+			métricas.get(nombre).rechazos.increment();
+			cliente.envía(String.format("%s El servidor está ocupado, intenta %s más tarde.%n",
+					Servidor.NOMBRE_SERVIDOR, nombre));
+		}
+		return true;
+	}
+	
+	/**
+	 * Ejecuta el comando y registra su latencia, incluido el tiempo en cola.
+	 */
+	private void ejecuta(String nombre, Comando comando, ProtocoloChat cliente,
+			String argumentos, long inicio) {
+		try {
+			comando.ejecuta(cliente, argumentos);
+		} catch (RuntimeException ex) {
+			Logger.getLogger(DespachadorComandos.class.getName()).log(Level.SEVERE,
+					"Falló el comando " + nombre, ex);
+		} finally {
+			métricas.get(nombre).registra(System.nanoTime() - inicio);
+		}
+	}
+	
+	/**
+	 * Imprime las latencias medidas para cada comando.
+	 * @param salida Flujo donde se imprimen.
+	 */
+	public void imprimeMétricas(PrintStream salida) {
+		salida.format("%-12s %10s %12s %12s %10s%n",
+				"comando", "usos", "prom (ms)", "máx (ms)", "rechazos");
+		for (String nombre : orden) {
+			Metrica m = métricas.get(nombre);
+			long usos = m.usos.sum();
+			double promedio = usos == 0 ? 0 : m.nanos.sum() / (usos * 1e6);
+			salida.format("%-12s %10d %12.3f %12.3f %10d%n",
+					nombre, usos, promedio, m.máximo.get() / 1e6, m.rechazos.sum());
+		}
+	}
+	
+	/**
+	 * Detiene los hilos trabajadores, los comandos en cola se descartan.
+	 */
+	public void close() {
+		trabajadores.shutdownNow();
+	}
+	
+	/**
+	 * Contadores de un comando, se actualizan desde varios hilos.
+	 */
+	private static class Metrica {
+		final LongAdder usos = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder rechazos = new LongAdder();
+		final LongAccumulator máximo = new LongAccumulator(Math::max, 0);
+		
+		void registra(long duración) {
+			usos.increment();
+			nanos.add(duración);
+			máximo.accumulate(duración);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2021, blackzafiro. All rights reserved.
+ *
+ * This software was designed with purely academic purposes.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package enchufes.servidor;
+
+import java.text.Normalizer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice invertido sobre los mensajes recientes del chat.
+ * 
+ * Los mensajes se guardan en un arreglo circular, el mensaje con
+ * identificador n ocupa la casilla n % capacidad.  Cada término apunta a la
+ * lista ordenada de identificadores de los mensajes que lo contienen.
+ * Un mensaje deja de ser visible cuando es sobrescrito en el arreglo o
+ * cuando es más viejo que la edad máxima; las listas de identificadores se
+ * recortan de forma perezosa.
+ * 
+ * Los mensajes se indexan en un hilo propio para no retrasar la difusión.
+ * @author blackzafiro
+ */
+public class IndiceMensajes {
+	
+	/** Número máximo de resultados que devuelve una búsqueda. */
+	public static final int MAX_RESULTADOS = 10;
+	
+	/** Mensajes en espera de ser indexados antes de empezar a descartarlos. */
+	private static final int CAPACIDAD_COLA = 4096;
+	
+	/** Cada cuántos mensajes se limpian todas las listas de identificadores. */
+	private static final int PERIODO_LIMPIEZA = 1 << 16;
+	
+	private final int capacidad;
+	private final long edadMáxima;
+	
+	// Arreglo circular con los mensajes.
+	private final String[] usuarios;
+	private final String[] textos;
+	private final long[] marcas;
+	
+	/** Identificador que recibirá el siguiente mensaje. */
+	private long siguienteId = 0;
+	
+	/** Identificador del mensaje visible más antiguo. */
+	private long primerId = 0;
+	
+	/** Marca del último mensaje indexado, las marcas nunca decrecen. */
+	private long últimaMarca = 0;
+	
+	private final Map<String, ListaIds> términos = new HashMap<>();
+	private final ReentrantReadWriteLock candado = new ReentrantReadWriteLock();
+	
+	/** Hilo que agrega los mensajes al índice. */
+	private final ThreadPoolExecutor indexador;
+	
+	/** Mensajes no indexados porque la cola estaba llena. */
+	private final LongAdder descartados = new LongAdder();
+	
+	/**
+	 * @param capacidad  Número máximo de mensajes guardados.
+	 * @param edadMáxima Milisegundos tras los cuales un mensaje se olvida.
+	 */
+	public IndiceMensajes(int capacidad, long edadMáxima) {
+		this.capacidad = capacidad;
+		this.edadMáxima = edadMáxima;
+		usuarios = new String[capacidad];
+		textos = new String[capacidad];
+		marcas = new long[capacidad];
+		indexador = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(CAPACIDAD_COLA),
+				tarea -> {
+					Thread t = new Thread(tarea, "indexador");
+					t.setDaemon(true);
+					return t;
+				},
+				(tarea, ejecutor) -> descartados.increment());
+	}
+	
+	/**
+	 * Programa el mensaje para ser indexado, regresa de inmediato.
+	 * @param usuario Quien envió el mensaje.
+	 * @param msj     Texto del mensaje.
+	 */
+	public void agrega(String usuario, String msj) {
+		indexador.execute(() -> indexa(usuario, msj));
+	}
+	
+	/**
+	 * Guarda el mensaje y lo agrega a las listas de sus términos.
+	 * La marca de tiempo se toma aquí, en el único hilo indexador, para que
+	 * crezca junto con los identificadores; olvidaViejos y busca dependen
+	 * de ese orden.
+	 */
+	private void indexa(String usuario, String msj) {
+		Set<String> términosMsj = términos(msj);
+		candado.writeLock().lock();
+		try {
+			// Por si el reloj del sistema retrocede.
+			long marca = Math.max(System.currentTimeMillis(), últimaMarca);
+			últimaMarca = marca;
+			long id = siguienteId++;
+			int casilla = (int) (id % capacidad);
+			usuarios[casilla] = usuario;
+			textos[casilla] = msj;
+			marcas[casilla] = marca;
+			
+			olvidaViejos(marca);
+			for (String término : términosMsj) {
+				ListaIds lista = términos.computeIfAbsent(término, t -> new ListaIds());
+				lista.recorta(primerId);
+				lista.agrega(id);
+			}
+			if (siguienteId % PERIODO_LIMPIEZA == 0) {
+				limpia();
+			}
+		} finally {
+			candado.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Avanza primerId más allá de los mensajes sobrescritos o muy viejos.
+	 * Debe llamarse con el candado de escritura.
+	 */
+	private void olvidaViejos(long ahora) {
+		primerId = Math.max(primerId, siguienteId - capacidad);
+		long límite = ahora - edadMáxima;
+		while (primerId < siguienteId && marcas[(int) (primerId % capacidad)] < límite) {
+			int casilla = (int) (primerId % capacidad);
+			usuarios[casilla] = null;
+			textos[casilla] = null;
+			primerId++;
+		}
+	}
+	
+	/** Recorta todas las listas y elimina los términos sin mensajes. */
+	private void limpia() {
+		Iterator<ListaIds> listas = términos.values().iterator();
+		while (listas.hasNext()) {
+			ListaIds lista = listas.next();
+			lista.recorta(primerId);
+			if (lista.tamaño() == 0) listas.remove();
+		}
+	}
+	
+	/**
+	 * Busca los mensajes que contienen todos los términos, del más reciente
+	 * al más antiguo.
+	 * @param consulta Términos separados por espacios.
+	 * @return Resultados formateados, a lo más {@link #MAX_RESULTADOS}.
+	 */
+	public List<String> busca(String consulta) {
+		Set<String> buscados = términos(consulta);
+		List<String> resultados = new ArrayList<>();
+		if (buscados.isEmpty()) return resultados;
+		
+		SimpleDateFormat formato = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		long límite = System.currentTimeMillis() - edadMáxima;
+		candado.readLock().lock();
+		try {
+			// Se recorre la lista más corta y se busca en las demás.
+			ListaIds[] listas = new ListaIds[buscados.size()];
+			int i = 0;
+			for (String término : buscados) {
+				ListaIds lista = términos.get(término);
+				if (lista == null) return resultados;
+				listas[i++] = lista;
+			}
+			Arrays.sort(listas, (a, b) -> Integer.compare(a.tamaño(), b.tamaño()));
+			
+			ListaIds corta = listas[0];
+			for (int j = corta.fin - 1; j >= corta.inicio && resultados.size() < MAX_RESULTADOS; j--) {
+				long id = corta.ids[j];
+				if (id < primerId) break;
+				int casilla = (int) (id % capacidad);
+				if (marcas[casilla] < límite) break;
+				
+				boolean enTodas = true;
+				for (int k = 1; k < listas.length && enTodas; k++) {
+					enTodas = listas[k].contiene(id);
+				}
+				if (enTodas) {
+					resultados.add(String.format("[%s] \033[96m%s\033[0m: %s",
+							formato.format(new Date(marcas[casilla])),
+							usuarios[casilla], textos[casilla]));
+				}
+			}
+		} finally {
+			candado.readLock().unlock();
+		}
+		return resultados;
+	}
+	
+	/**
+	 * @return Número de mensajes visibles en el índice.
+	 */
+	public long tamaño() {
+		candado.readLock().lock();
+		try {
+			return siguienteId - primerId;
+		} finally {
+			candado.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return Mensajes que no se indexaron porque el indexador iba atrasado.
+	 */
+	public long descartados() {
+		return descartados.sum();
+	}
+	
+	/** Detiene el hilo indexador. */
+	public void close() {
+		indexador.shutdownNow();
+	}
+	
+	/**
+	 * Separa el texto en términos en minúsculas y sin acentos.
+	 * @param texto Mensaje o consulta.
+	 * @return Términos sin repetir.
+	 */
+	static Set<String> términos(String texto) {
+		String normal = texto.toLowerCase();
+		if (!esAscii(normal)) {
+			normal = Normalizer.normalize(normal, Normalizer.Form.NFD)
+					.replaceAll("\\p{M}", "");
+		}
+		// Recorre el texto una sola vez en lugar de usar split.
+		Set<String> términos = new LinkedHashSet<>();
+		int inicio = -1;
+		for (int i = 0; i <= normal.length(); i++) {
+			boolean letra = i < normal.length() && Character.isLetterOrDigit(normal.charAt(i));
+			if (letra && inicio < 0) {
+				inicio = i;
+			} else if (!letra && inicio >= 0) {
+				términos.add(normal.substring(inicio, i));
+				inicio = -1;
+			}
+		}
+		return términos;
+	}
+	
+	private static boolean esAscii(String texto) {
+		for (int i = 0; i < texto.length(); i++) {
+			if (texto.charAt(i) > 127) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Lista creciente de identificadores guardada en un arreglo de long,
+	 * sin objetos por elemento.  Las posiciones antes de inicio ya no son
+	 * válidas.
+	 */
+	private static class ListaIds {
+		long[] ids = new long[4];
+		int inicio = 0;
+		int fin = 0;
+		
+		int tamaño() {
+			return fin - inicio;
+		}
+		
+		void agrega(long id) {
+			if (fin == ids.length) {
+				if (inicio > ids.length / 2) {
+					// Reusa el espacio liberado al recortar.
+					System.arraycopy(ids, inicio, ids, 0, fin - inicio);
+					fin -= inicio;
+					inicio = 0;
+				} else {
+					ids = Arrays.copyOf(ids, ids.length * 2);
+				}
+			}
+			ids[fin++] = id;
+		}
+		
+		/** Descarta los identificadores menores que primerId. */
+		void recorta(long primerId) {
+			if (inicio < fin && ids[inicio] < primerId) {
+				int pos = Arrays.binarySearch(ids, inicio, fin, primerId);
+				inicio = pos >= 0 ? pos : -pos - 1;
+				if (inicio == fin) {
+					inicio = fin = 0;
+					if (ids.length > 64) ids = new long[4];
+				}
+			}
+		}
+		
+		boolean contiene(long id) {
+			return Arrays.binarySearch(ids, inicio, fin, id) >= 0;
+		}
+	}
+}
@@ -22,7 +22,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,20 +43,28 @@ public class ProtocoloChat extends Thread {
 	private BufferedReader in;
 	private boolean escuchando = true;
 	
+	/** Si el cliente pidió recibir comprimidos los mensajes largos. */
+	private volatile boolean comprimir = false;
+	
+	/**
+	 * Si hay un comando costoso de este cliente en cola o ejecutándose,
+	 * así un solo cliente no puede acaparar los hilos trabajadores.
+	 */
+	final AtomicBoolean comandoCostosoEnCurso = new AtomicBoolean(false);
+	
 	public static final String CLAVE_USARIO_REGISTRADO = "[registrado]";
 	
 	/** Comando que debe enviar el cliente para terminar la conexión. */
 	public final static String COMANDO_SALIR = "/salir";
 	
 	/** Comando para mostrar usuarios en el chat. */
-	private static final String COMANDO_LISTAR = "/lista";
+	public static final String COMANDO_LISTAR = "/lista";
 	
-	/** Tabla de comandos implementados en el servidor. */
-	private static final HashMap<String, String> COMANDOS = new HashMap<>();
-	static {
-		COMANDOS.put(COMANDO_SALIR, "Desconecta del servidor.");
-		COMANDOS.put(COMANDO_LISTAR, "Lista a los otros usuarios en el chat.");
-	}
+	/** Comando para buscar en los mensajes recientes. */
+	public static final String COMANDO_BUSCAR = "/buscar";
+	
+	/** Comando con el que el cliente negocia la compresión de mensajes largos. */
+	public static final String COMANDO_COMPRIMIR = "/comprimir";
 	
 	/** Frase que usa el servidor para indicar al cliente que lo ha desconectado. */
 	public final static String PALABRA_SALIDA = "[¡Adios!]";
@@ -84,9 +92,7 @@ public class ProtocoloChat extends Thread {
 			out = new PrintWriter(enchufe.getOutputStream(), true);
 			in = new BufferedReader(new InputStreamReader(enchufe.getInputStream()));
 			
-			for(String comando : COMANDOS.keySet()) {
-				out.format("\033[1;35m%s\t%s\033[0m%n", comando, COMANDOS.get(comando));
-			}
+			servidor.comandos.enviaAyuda(this);
 		
 			boolean usuarioInvalido = true;
 			do {
@@ -111,7 +117,7 @@ public class ProtocoloChat extends Thread {
 					out.println(ProtocoloChat.PALABRA_SALIDA);
 					enchufe.close();
 					return false;
-				} else if(COMANDOS.containsKey(usuario)) {
+				} else if(servidor.comandos.existe(usuario)) {
 					out.println("Su nombre es un comando, elija otro.");
 					usuario = null;
 					continue;
@@ -156,24 +162,23 @@ public class ProtocoloChat extends Thread {
 	@Override
 	public void run() {
 				
-		if(!registraUsuario()) return;
+		if(!registraUsuario()) {
+			// Libera el enchufe aunque el cliente se haya ido sin registrarse,
+			// de otro modo cada intento consume un descriptor del proceso.
+			servidor.clientesAnónimos.remove(this.hashCode());
+			try {
+				enchufe.close();
+			} catch (IOException ex) {
+				Logger.getLogger(ProtocoloChat.class.getName()).log(Level.FINE, null, ex);
+			}
+			return;
+		}
 				
 		try {
 			// Escucha y transmite
 			String inputLine;
 			while (escuchando && (inputLine = in.readLine()) != null) {
-				switch(inputLine) {
-					case COMANDO_SALIR:
-						servidor.desconectaCliente(usuario);
-						continue;
-					case COMANDO_LISTAR:
-						out.format("%s Inicia lista de usuarios%n", Servidor.NOMBRE_SERVIDOR);
-						for(String usuario : servidor.clientes.keySet()) {
-							out.format("\033[96m%s\033[0m%n", usuario);
-						}
-						out.format("%s Termina lista de usuarios%n", Servidor.NOMBRE_SERVIDOR);
-						continue;
-				}
+				if(servidor.comandos.despacha(this, inputLine)) continue;
 				servidor.difundeMensaje(usuario, inputLine);
 			}
 			
@@ -197,12 +202,52 @@ public class ProtocoloChat extends Thread {
 	}
 	
 	/**
-	 * Envía el mensaje al cliente.
-	 * @param usuario Cliente que envió el mensaje.
-	 * @param msj     Texto enviado.
+	 * @return Nombre del usuario atendido por este hilo.
+	 */
+	public String getUsuario() {
+		return usuario;
+	}
+	
+	/**
+	 * Escribe texto ya formateado al cliente en una sola operación, de modo
+	 * que respuestas de varias líneas no se mezclen con otros mensajes.
+	 * Puede llamarse desde los hilos trabajadores de los comandos.
+	 * @param texto Texto a enviar, incluye sus saltos de línea.
+	 */
+	public void envía(String texto) {
+		if (comprimir) {
+			int fin = texto.length();
+			while (fin > 0 && (texto.charAt(fin - 1) == '\n' || texto.charAt(fin - 1) == '\r')) fin--;
+			envíaLínea(servidor.compresión.linea(texto.substring(0, fin)));
+			return;
+		}
+		out.print(texto);
+		out.flush();
+	}
+	
+	/**
+	 * Envía una línea ya formateada al cliente, comprimida si el cliente la
+	 * pidió y conviene.
+	 * @param línea Línea preparada por {@link Compresion#linea(String)}.
+	 */
+	public void envíaLínea(Compresion.Linea línea) {
+		if (comprimir) {
+			String comprimida = línea.comprimida();
+			if (comprimida != null) {
+				out.println(comprimida);
+				servidor.compresión.registraEnvío(línea.bytesOriginales(), comprimida.length());
+				return;
+			}
+		}
+		out.println(línea.texto);
+	}
+	
+	/**
+	 * Desde ahora los mensajes largos se envían comprimidos con
+	 * {@link Compresion}.
 	 */
-	public void difundeMensaje(String usuario, String msj) {
-		out.format("[[%s]]: %s%n", usuario, msj);
+	void activaCompresión() {
+		comprimir = true;
 	}
 	
 	/**
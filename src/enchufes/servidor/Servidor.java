@@ -18,10 +18,16 @@
 package enchufes.servidor;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Programa servidor, se encarga de recibir conexiones y retransimitir mensajes
@@ -40,7 +46,8 @@ public class Servidor {
 	
 	private static final String INI_COLOR = "\033[1;35m";
 	
-	static final String NOMBRE_SERVIDOR = "\033[1;31mServidor:\033[0m";
+	/** Remitente de los avisos del servidor. */
+	public static final String NOMBRE_SERVIDOR = "\033[1;31mServidor:\033[0m";
 	
 	/** Comando para teminar la ejecución del servidor. */
 	private static final String COMANDO_SALIR = "/salir";
@@ -48,24 +55,59 @@ public class Servidor {
 	/** Comando para mostrar usuarios en la tabla. */
 	private static final String COMANDO_LISTAR = "/lista";
 	
+	/** Comando para mostrar la latencia de los comandos de los clientes. */
+	private static final String COMANDO_METRICAS = "/metricas";
+	
+	/** Pausas mínima y máxima tras un error al aceptar. */
+	private static final long ESPERA_MIN_MS = 10;
+	private static final long ESPERA_MAX_MS = 1000;
+	
 	/** Se encarga de escuchar por nuevas conexiones. */
 	private ServerSocket servidor = null;
 	
+	/** Enchufes servidor de todos los aceptadores (incluye a servidor). */
+	private final List<ServerSocket> enchufesServidor = new ArrayList<>();
+	
+	/** Opciones de escucha y de los enchufes de los clientes. */
+	private final ConfiguracionServidor config;
+	
 	/** Usuarios con conexión activa a este servidor. */
 	ConcurrentHashMap<String, ProtocoloChat> clientes = new ConcurrentHashMap<>();
 	
 	/** Clientes cuyo protocolo de indentificación no ha sido completado. */
 	ConcurrentHashMap<Integer, ProtocoloChat> clientesAnónimos = new ConcurrentHashMap<>();
 	
+	/** Comandos que pueden enviar los clientes. */
+	final DespachadorComandos comandos = new DespachadorComandos();
+	
+	/** Mensajes recientes, para /buscar. */
+	private final IndiceMensajes historial;
+	
+	/** Compresión de mensajes largos para los clientes que la piden. */
+	final Compresion compresión;
+	
 	/**
 	 * Crea un servidor en esta computadora en el puerto indicado.
 	 * @param puerto 
 	 */
 	public Servidor(int puerto) {
+		this(configuraciónConPuerto(puerto));
+	}
+	
+	/**
+	 * Crea un servidor en esta computadora con las opciones indicadas.
+	 * @param config Puerto, aceptadores y opciones de los enchufes.
+	 */
+	public Servidor(ConfiguracionServidor config) {
+		this.config = config;
+		historial = new IndiceMensajes(config.historialMensajes,
+				TimeUnit.MINUTES.toMillis(config.historialMinutos));
+		compresión = new Compresion(config.compresiónUmbral);
 		try {
 			
-			servidor = new ServerSocket(puerto);
+			abreEnchufes();
 			
+			registraComandos();
 			imprimeComandos();
 			
 			// Hilo encargado de escuchar comandos del usuario desde la consola.
@@ -89,6 +131,12 @@ public class Servidor {
 									}
 								}
 								break;
+							case COMANDO_METRICAS:
+								comandos.imprimeMétricas(System.out);
+								System.out.format("Historial: %d mensajes, %d sin indexar%n",
+										historial.tamaño(), historial.descartados());
+								compresión.imprimeMétricas(System.out);
+								break;
 							case COMANDO_SALIR:
 								Servidor.this.close();
 								return;
@@ -97,8 +145,14 @@ public class Servidor {
 				}
 			}.start();
 			
-			// Escucha por nuevas conexiones y crea un hilo por enchufeCliente aceptado.
-			recibeClientes();
+			// Escucha por nuevas conexiones y crea un hilo por enchufeCliente
+			// aceptado.  Los aceptadores extra corren en sus propios hilos.
+			for (int i = 1; i < config.aceptadores; i++) {
+				ServerSocket enchufe = enchufesServidor.get(i % enchufesServidor.size());
+				Thread aceptador = new Thread(() -> recibeClientes(enchufe), "aceptador-" + i);
+				aceptador.start();
+			}
+			recibeClientes(servidor);
 			
 		} catch(IOException ioe) {
 			// No se pudo montar el servidor.
@@ -108,34 +162,172 @@ public class Servidor {
 		}
 	}
 	
+	private static ConfiguracionServidor configuraciónConPuerto(int puerto) {
+		ConfiguracionServidor config = new ConfiguracionServidor();
+		config.puerto = puerto;
+		return config;
+	}
+	
+	/**
+	 * Abre los enchufes servidor.  Con SO_REUSEPORT cada aceptador tiene el
+	 * suyo y el núcleo reparte las conexiones entre ellos, si no todos los
+	 * aceptadores comparten uno solo.
+	 * @throws IOException Si no se pudo abrir algún enchufe.
+	 */
+	private void abreEnchufes() throws IOException {
+		servidor = new ServerSocket();
+		boolean reusePort = config.reusePort && config.aceptadores > 1 &&
+				servidor.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		int enchufes = reusePort ? config.aceptadores : 1;
+		
+		for (int i = 0; i < enchufes; i++) {
+			ServerSocket enchufe = i == 0 ? servidor : new ServerSocket();
+			if (reusePort) {
+				enchufe.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			// Debe fijarse antes de bind para que aplique a los clientes aceptados.
+			if (config.bufferRecepción > 0) {
+				enchufe.setReceiveBufferSize(config.bufferRecepción);
+			}
+			enchufe.bind(new InetSocketAddress(config.puerto), config.backlog);
+			enchufesServidor.add(enchufe);
+		}
+	}
+	
 	/** Imprime estado y comandos disponibles. */
 	private void imprimeComandos() {
 		System.out.format("%sServidor levantado en %s puerto %d\033[0m%n",
 				  INI_COLOR,
 				  servidor.getInetAddress(),
 				  servidor.getLocalPort());
+		System.out.format("%s  %d aceptador(es) en %d enchufe(s), backlog %d, TCP_NODELAY %b%n",
+				  INI_COLOR, config.aceptadores, enchufesServidor.size(),
+				  config.backlog, config.tcpNoDelay);
 		System.out.format("%s  %s para terminar la ejecución.%n", INI_COLOR, COMANDO_SALIR);
-		System.out.format("  %s para mostrar la tabla de usuarios.\033[0m%n", COMANDO_LISTAR);
+		System.out.format("  %s para mostrar la tabla de usuarios.%n", COMANDO_LISTAR);
+		System.out.format("  %s para mostrar la latencia de los comandos.\033[0m%n", COMANDO_METRICAS);
+	}
+	
+	/** Registra los comandos que pueden enviar los clientes. */
+	private void registraComandos() {
+		comandos.registra(ProtocoloChat.COMANDO_SALIR, new Comando() {
+			@Override
+			public String descripción() {
+				return "Desconecta del servidor.";
+			}
+			
+			@Override
+			public void ejecuta(ProtocoloChat cliente, String argumentos) {
+				desconectaCliente(cliente.getUsuario());
+			}
+		});
+		comandos.registra(ProtocoloChat.COMANDO_LISTAR, new Comando() {
+			@Override
+			public String descripción() {
+				return "Lista a los otros usuarios en el chat.";
+			}
+			
+			@Override
+			public void ejecuta(ProtocoloChat cliente, String argumentos) {
+				StringBuilder lista = new StringBuilder();
+				lista.append(String.format("%s Inicia lista de usuarios%n", NOMBRE_SERVIDOR));
+				for(String usuario : clientes.keySet()) {
+					lista.append(String.format("\033[96m%s\033[0m%n", usuario));
+				}
+				lista.append(String.format("%s Termina lista de usuarios%n", NOMBRE_SERVIDOR));
+				cliente.envía(lista.toString());
+			}
+		});
+		comandos.registra(ProtocoloChat.COMANDO_BUSCAR, new Comando() {
+			@Override
+			public String descripción() {
+				return "<términos> Busca los mensajes recientes que los contengan.";
+			}
+			
+			@Override
+			public boolean esCostoso() {
+				return true;
+			}
+			
+			@Override
+			public boolean aceptaArgumentos() {
+				return true;
+			}
+			
+			@Override
+			public void ejecuta(ProtocoloChat cliente, String argumentos) {
+				List<String> encontrados = historial.busca(argumentos);
+				StringBuilder respuesta = new StringBuilder();
+				respuesta.append(String.format("%s %d resultado(s) para '%s'%n",
+						NOMBRE_SERVIDOR, encontrados.size(), argumentos));
+				for (String mensaje : encontrados) {
+					respuesta.append(mensaje).append(System.lineSeparator());
+				}
+				cliente.envía(respuesta.toString());
+			}
+		});
+		// Si la compresión está desactivada el comando no se anuncia y los
+		// clientes no lo piden.
+		if (!compresión.activa()) return;
+		comandos.registra(ProtocoloChat.COMANDO_COMPRIMIR, new Comando() {
+			@Override
+			public String descripción() {
+				return "Recibe comprimidos los mensajes largos.";
+			}
+			
+			@Override
+			public void ejecuta(ProtocoloChat cliente, String argumentos) {
+				cliente.activaCompresión();
+				cliente.envía(String.format("%s Compresión activada.%n", NOMBRE_SERVIDOR));
+			}
+		});
 	}
 	
 	/**
 	 * Escucha permanentemente por nuevas conexiones y crea hilos para
 	 * atender a los clientes nuevos.
+	 * @param escucha Enchufe servidor del que acepta este hilo.
 	 */
-	private void recibeClientes() {
-		while(true) {
-			try {
-				// La siguiente llamada bloquea este hilo hasta que un
-				// enchufeCliente se haya conectado.
-				Socket enchufeCliente = servidor.accept();
-				// Crear e iniciar hilo para atender cliente.
-				ProtocoloChat clienteNuevo = new ProtocoloChat(this, enchufeCliente);
-				clientesAnónimos.put(clienteNuevo.hashCode(), clienteNuevo);
-				clienteNuevo.start();
-			} catch (IOException e) {
-				if(servidor.isClosed()) return;
-				System.err.println("Fallo al aceptar cliente.");
-				return;
+	private void recibeClientes(ServerSocket escucha) {
+		long espera = ESPERA_MIN_MS;
+		try {
+			while(true) {
+				try {
+					// La siguiente llamada bloquea este hilo hasta que un
+					// enchufeCliente se haya conectado.
+					Socket enchufeCliente = escucha.accept();
+					espera = ESPERA_MIN_MS;
+					try {
+						config.configura(enchufeCliente);
+					} catch (SocketException e) {
+						// El cliente se atiende con las opciones por defecto.
+						System.err.println("No se pudieron configurar las opciones del enchufe cliente.");
+					}
+					// Crear e iniciar hilo para atender cliente.
+					ProtocoloChat clienteNuevo = new ProtocoloChat(this, enchufeCliente);
+					clientesAnónimos.put(clienteNuevo.hashCode(), clienteNuevo);
+					clienteNuevo.start();
+				} catch (IOException e) {
+					if(escucha.isClosed()) return;
+					// Errores como EMFILE son pasajeros, se reintenta tras una
+					// pausa creciente para no girar en vacío.
+					System.err.format("Fallo al aceptar cliente, reintentando en %d ms: %s%n",
+					                  espera, e.getMessage());
+					Thread.sleep(espera);
+					espera = Math.min(espera * 2, ESPERA_MAX_MS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Si el enchufe sólo es de este aceptador se cierra, así el núcleo
+			// deja de enviarle conexiones que nadie aceptaría.
+			if (!escucha.isClosed() && enchufesServidor.size() == config.aceptadores) {
+				try {
+					escucha.close();
+				} catch (IOException e) {
+					System.err.println("No se pudo cerrar el enchufe del aceptador.");
+				}
 			}
 		}
 	}
@@ -157,15 +349,16 @@ public class Servidor {
 	 */
 	void notifica(String msj, String excepto) {
 		System.out.format("   %s %s%n", NOMBRE_SERVIDOR, msj);
+		Compresion.Linea línea = compresión.linea(String.format("[[%s]]: %s", NOMBRE_SERVIDOR, msj));
 		if(excepto != null) {
 			for(String usuario : clientes.keySet()) {
 				if (!excepto.equals(usuario)) {
-					clientes.get(usuario).difundeMensaje(NOMBRE_SERVIDOR, msj);
+					clientes.get(usuario).envíaLínea(línea);
 				}
 			}
 		} else {
 			for(String usuario : clientes.keySet()) {
-				clientes.get(usuario).difundeMensaje(NOMBRE_SERVIDOR, msj);
+				clientes.get(usuario).envíaLínea(línea);
 			}
 		}
 	}
@@ -178,9 +371,13 @@ public class Servidor {
 	 */
 	public void difundeMensaje(String usuario, String msj) {
 		System.out.format("   \033[34m %s \033[0m: %s%n", usuario, msj);
+		historial.agrega(usuario, msj);
+		// Se formatea una sola vez para todos los colegas y se comprime
+		// sólo si alguno lo pidió.
+		Compresion.Linea línea = compresión.linea(String.format("[[%s]]: %s", usuario, msj));
 		for(String colega : clientes.keySet()) {
 			//if (!usuario.equals(colega)) {
-				clientes.get(colega).difundeMensaje(usuario, msj);
+				clientes.get(colega).envíaLínea(línea);
 			//}
 		}
 	}
@@ -190,6 +387,9 @@ public class Servidor {
 	 */
 	public void close() {
 		
+		comandos.close();
+		historial.close();
+		compresión.close();
 		clientesAnónimos.keySet().forEach(usuario -> {
 			clientesAnónimos.get(usuario).cierraConexión();
 		});
@@ -197,10 +397,11 @@ public class Servidor {
 			clientes.get(usuario).cierraConexión();
 		});
 		try {
-			if (!servidor.isClosed()) {
-				servidor.close();
-				System.out.println("Servidor cerrado satisfactoriamente.");
+			// Algún aceptador pudo haber cerrado ya su enchufe.
+			for (ServerSocket enchufe : enchufesServidor) {
+				enchufe.close();
 			}
+			System.out.println("Servidor cerrado satisfactoriamente.");
 		} catch(IOException ioe) {
 			// No se cerrar el enchufe servidor.
 			System.err.println("No se pudo cerrar el enchufe.");
@@ -210,23 +411,24 @@ public class Servidor {
 	}
 	
 	/**
-	 * Levanta un servidor en localhost: 1234 o
-	 * en la dirección y puerto indicados.
-	 * @param args 
+	 * Levanta un servidor en localhost: 1557 o
+	 * en el puerto y con las opciones indicadas.
+	 * @param args Puerto, o bien opciones descritas en {@link ConfiguracionServidor}.
 	 */
 	public static void main(String[] args) {
-		int PUERTO_POR_DEFECTO = 1557;
-		int puerto = PUERTO_POR_DEFECTO;
-		
-		if (args.length == 1) {
-			try {
-				puerto = Integer.parseInt(args[0]);
-			} catch (NumberFormatException ex) {
-				System.out.println("Uso: java enchufes.Servidor [<puerto>]");
-				System.exit(-1);
-			}
+		ConfiguracionServidor config = null;
+		try {
+			config = ConfiguracionServidor.deArgumentos(args);
+		} catch (IllegalArgumentException ex) {
+			System.out.println(ex.getMessage());
+			System.out.println(ConfiguracionServidor.USO);
+			System.exit(-1);
+		} catch (IOException ex) {
+			System.err.println("No se pudo leer el archivo de configuración.");
+			System.err.println(ex.toString());
+			System.exit(-1);
 		}
 		
-		new Servidor(puerto);
+		new Servidor(config);
 	}
 }